@@ -0,0 +1,152 @@
+package com.example.randomblockmod;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import net.minecraft.server.world.ServerWorld;
+
+// 区块转换各阶段的JFR事件，未录制时几乎没有开销
+// 使用方式：begin() → 执行阶段 → end() → shouldCommit() 为真时再填充字段并 commit()
+public final class ConversionEvents {
+
+	private static final String CATEGORY = "RandomBlockMod";
+
+	private ConversionEvents() {
+	}
+
+	// 仅在事件需要提交时调用，避免未录制时的字符串开销
+	static String dimension(ServerWorld world) {
+		return world.getRegistryKey().getValue().toString();
+	}
+
+	@Name("randomblockmod.Detection")
+	@Label("Chunk Detection")
+	@Description("Player entering a chunk and queuing it for conversion")
+	@Category({CATEGORY, "Conversion"})
+	@StackTrace(false)
+	public static class Detection extends Event {
+		@Label("Chunk X")
+		public int chunkX;
+		@Label("Chunk Z")
+		public int chunkZ;
+		@Label("Dimension")
+		public String dimension;
+	}
+
+	@Name("randomblockmod.Selection")
+	@Label("Block Selection")
+	@Description("Choosing the random block for a chunk")
+	@Category({CATEGORY, "Conversion"})
+	@StackTrace(false)
+	public static class Selection extends Event {
+		@Label("Chunk X")
+		public int chunkX;
+		@Label("Chunk Z")
+		public int chunkZ;
+		@Label("Dimension")
+		public String dimension;
+		@Label("Block")
+		public String block;
+		@Label("Candidates")
+		public int candidates;
+	}
+
+	@Name("randomblockmod.QueueWait")
+	@Label("Queue Wait")
+	@Description("Time a chunk task spent in the queue before the server thread picked it up")
+	@Category({CATEGORY, "Conversion"})
+	@StackTrace(false)
+	public static class QueueWait extends Event {
+		@Label("Chunk X")
+		public int chunkX;
+		@Label("Chunk Z")
+		public int chunkZ;
+		@Label("Dimension")
+		public String dimension;
+		@Label("Block")
+		public String block;
+		@Label("Queue Size")
+		public int queueSize;
+	}
+
+	@Name("randomblockmod.SectionRewrite")
+	@Label("Section Rewrite")
+	@Description("Rewriting the blocks of one 16x16x16 chunk section")
+	@Category({CATEGORY, "Conversion"})
+	@StackTrace(false)
+	public static class SectionRewrite extends Event {
+		@Label("Chunk X")
+		public int chunkX;
+		@Label("Chunk Z")
+		public int chunkZ;
+		@Label("Section Y")
+		public int sectionY;
+		@Label("Dimension")
+		public String dimension;
+		@Label("Block")
+		public String block;
+		@Label("Blocks Replaced")
+		public int blocksReplaced;
+	}
+
+	@Name("randomblockmod.Commit")
+	@Label("Chunk Commit")
+	@Description("Applying a conversion to a chunk, including the undo snapshot and all section rewrites")
+	@Category({CATEGORY, "Conversion"})
+	@StackTrace(false)
+	public static class Commit extends Event {
+		@Label("Chunk X")
+		public int chunkX;
+		@Label("Chunk Z")
+		public int chunkZ;
+		@Label("Dimension")
+		public String dimension;
+		@Label("Block")
+		public String block;
+		@Label("Sections Rewritten")
+		public int sectionsRewritten;
+		@Label("Blocks Replaced")
+		public int blocksReplaced;
+		@Label("Block Entities Removed")
+		public int blockEntitiesRemoved;
+	}
+
+	@Name("randomblockmod.Relight")
+	@Label("Chunk Relight")
+	@Description("Scheduling light updates for a converted chunk")
+	@Category({CATEGORY, "Conversion"})
+	@StackTrace(false)
+	public static class Relight extends Event {
+		@Label("Chunk X")
+		public int chunkX;
+		@Label("Chunk Z")
+		public int chunkZ;
+		@Label("Dimension")
+		public String dimension;
+		@Label("Block")
+		public String block;
+		@Label("Light Checks")
+		public int lightChecks;
+	}
+
+	@Name("randomblockmod.Resync")
+	@Label("Chunk Resync")
+	@Description("Sending a converted chunk to the players watching it")
+	@Category({CATEGORY, "Conversion"})
+	@StackTrace(false)
+	public static class Resync extends Event {
+		@Label("Chunk X")
+		public int chunkX;
+		@Label("Chunk Z")
+		public int chunkZ;
+		@Label("Dimension")
+		public String dimension;
+		@Label("Block")
+		public String block;
+		@Label("Players")
+		public int players;
+	}
+}
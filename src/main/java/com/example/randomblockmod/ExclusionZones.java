@@ -0,0 +1,191 @@
+package com.example.randomblockmod;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.ChunkPos;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+// 不参与转换的保护区域（按区块矩形），用区域级位图索引，查询为O(1)
+public class ExclusionZones {
+
+	// 每个区域文件 32x32 个区块，位图为 1024 位
+	private static final int REGION_BITMAP_LONGS = 1024 / 64;
+
+	// 整个区域都被覆盖时共享的全1位图，不可修改
+	private static final long[] FULL_REGION = new long[REGION_BITMAP_LONGS];
+
+	// 单个保护区域每边最多的区块数，防止误输入的坐标生成海量位图
+	static final int MAX_ZONE_SIDE = 4096;
+
+	static {
+		Arrays.fill(FULL_REGION, -1L);
+	}
+
+	private final Path file;
+	private final List<Zone> zones = new ArrayList<>();
+	private int nextId = 1;
+
+	// 维度 → 区域坐标 → 区块位图
+	private final Map<Identifier, Long2ObjectMap<long[]>> index = new HashMap<>();
+
+	public ExclusionZones(Path file) {
+		this.file = file;
+	}
+
+	// 读取保护区域文件，文件不存在时为空
+	public static ExclusionZones load(Path file) throws IOException {
+		ExclusionZones exclusions = new ExclusionZones(file);
+		if (!Files.exists(file)) return exclusions;
+
+		NbtCompound nbt = NbtIo.readCompressed(file.toFile());
+		NbtList list = nbt.getList("Zones", NbtElement.COMPOUND_TYPE);
+		for (int i = 0; i < list.size(); i++) {
+			Zone zone = Zone.fromNbt(list.getCompound(i));
+			exclusions.zones.add(zone);
+			exclusions.mark(zone);
+		}
+		exclusions.nextId = Math.max(nbt.getInt("NextId"), 1);
+		return exclusions;
+	}
+
+	public boolean isExcluded(Identifier dimension, int chunkX, int chunkZ) {
+		Long2ObjectMap<long[]> regions = index.get(dimension);
+		if (regions == null) return false;
+		long[] bitmap = regions.get(ChunkPos.toLong(chunkX >> 5, chunkZ >> 5));
+		if (bitmap == null) return false;
+		int bit = (chunkZ & 31) << 5 | (chunkX & 31);
+		return (bitmap[bit >> 6] & 1L << (bit & 63)) != 0;
+	}
+
+	static boolean isTooLarge(int minX, int minZ, int maxX, int maxZ) {
+		return Math.abs((long) maxX - minX) >= MAX_ZONE_SIDE || Math.abs((long) maxZ - minZ) >= MAX_ZONE_SIDE;
+	}
+
+	public Zone add(Identifier dimension, String name, int minX, int minZ, int maxX, int maxZ) throws IOException {
+		Zone zone = new Zone(nextId++, dimension, name, minX, minZ, maxX, maxZ);
+		zones.add(zone);
+		mark(zone);
+		save();
+		return zone;
+	}
+
+	// 删除后重建该维度的位图，删除操作很少发生
+	public boolean remove(int id) throws IOException {
+		Zone removed = null;
+		for (Iterator<Zone> iterator = zones.iterator(); iterator.hasNext(); ) {
+			Zone zone = iterator.next();
+			if (zone.id == id) {
+				removed = zone;
+				iterator.remove();
+				break;
+			}
+		}
+		if (removed == null) return false;
+
+		index.remove(removed.dimension);
+		for (Zone zone : zones) {
+			if (zone.dimension.equals(removed.dimension)) {
+				mark(zone);
+			}
+		}
+		save();
+		return true;
+	}
+
+	public List<Zone> getZones() {
+		return Collections.unmodifiableList(zones);
+	}
+
+	private void mark(Zone zone) {
+		Long2ObjectMap<long[]> regions = index.computeIfAbsent(zone.dimension, k -> new Long2ObjectOpenHashMap<>());
+		for (int regionX = zone.minX >> 5; regionX <= zone.maxX >> 5; regionX++) {
+			for (int regionZ = zone.minZ >> 5; regionZ <= zone.maxZ >> 5; regionZ++) {
+				long key = ChunkPos.toLong(regionX, regionZ);
+				long[] existing = regions.get(key);
+				if (existing == FULL_REGION) continue;
+
+				// 只标记与该区域重叠的部分，整个区域被覆盖时直接使用共享位图
+				int fromX = Math.max(zone.minX, regionX << 5) & 31;
+				int toX = Math.min(zone.maxX, (regionX << 5) + 31) & 31;
+				int fromZ = Math.max(zone.minZ, regionZ << 5) & 31;
+				int toZ = Math.min(zone.maxZ, (regionZ << 5) + 31) & 31;
+				if (fromX == 0 && toX == 31 && fromZ == 0 && toZ == 31) {
+					regions.put(key, FULL_REGION);
+					continue;
+				}
+
+				long[] bitmap = existing != null ? existing : new long[REGION_BITMAP_LONGS];
+				regions.put(key, bitmap);
+				for (int z = fromZ; z <= toZ; z++) {
+					for (int x = fromX; x <= toX; x++) {
+						int bit = z << 5 | x;
+						bitmap[bit >> 6] |= 1L << (bit & 63);
+					}
+				}
+			}
+		}
+	}
+
+	private void save() throws IOException {
+		NbtList list = new NbtList();
+		for (Zone zone : zones) {
+			list.add(zone.toNbt());
+		}
+		NbtCompound nbt = new NbtCompound();
+		nbt.put("Zones", list);
+		nbt.putInt("NextId", nextId);
+
+		Files.createDirectories(file.getParent());
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		NbtIo.writeCompressed(nbt, temp.toFile());
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// 维度内的区块矩形（闭区间）
+	public static class Zone {
+		final int id;
+		final Identifier dimension;
+		final String name;
+		final int minX, minZ, maxX, maxZ;
+
+		Zone(int id, Identifier dimension, String name, int minX, int minZ, int maxX, int maxZ) {
+			this.id = id;
+			this.dimension = dimension;
+			this.name = name;
+			this.minX = Math.min(minX, maxX);
+			this.minZ = Math.min(minZ, maxZ);
+			this.maxX = Math.max(minX, maxX);
+			this.maxZ = Math.max(minZ, maxZ);
+		}
+
+		public String describe() {
+			return "#" + id + " " + name + " " + dimension + " 区块 [" + minX + ", " + minZ + "]~[" + maxX + ", " + maxZ + "]";
+		}
+
+		NbtCompound toNbt() {
+			NbtCompound nbt = new NbtCompound();
+			nbt.putInt("Id", id);
+			nbt.putString("Dim", dimension.toString());
+			nbt.putString("Name", name);
+			nbt.putInt("MinX", minX);
+			nbt.putInt("MinZ", minZ);
+			nbt.putInt("MaxX", maxX);
+			nbt.putInt("MaxZ", maxZ);
+			return nbt;
+		}
+
+		static Zone fromNbt(NbtCompound nbt) {
+			return new Zone(nbt.getInt("Id"), new Identifier(nbt.getString("Dim")), nbt.getString("Name"),
+					nbt.getInt("MinX"), nbt.getInt("MinZ"), nbt.getInt("MaxX"), nbt.getInt("MaxZ"));
+		}
+	}
+}
@@ -0,0 +1,425 @@
+package com.example.randomblockmod;
+
+import net.minecraft.block.Block;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.registry.RegistryKeys;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.world.ChunkTicketType;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.text.Text;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.WorldChunk;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+// 区域预转换：按螺旋顺序加载并转换区块，根据MSPT限速，进度可跨重启恢复
+public class PregenManager {
+
+	// 预转换使用的区块加载票据
+	private static final ChunkTicketType<ChunkPos> PREGEN_TICKET =
+			ChunkTicketType.create("randomblock_pregen", Comparator.comparingLong(ChunkPos::toLong));
+
+	// MSPT高于此值时暂停加载新区块
+	private static final float TARGET_MSPT = 40.0f;
+
+	// 每tick用于转换的最长时间（纳秒）
+	private static final long MAX_BUDGET_NANOS = 20_000_000L;
+
+	// 同时等待加载的区块数
+	private static final int MAX_IN_FLIGHT = 32;
+
+	// 预转换区域的最大半径（区块），矩形区域每边最多 2 * MAX_RADIUS + 1 个区块
+	static final int MAX_RADIUS = 2000;
+
+	// 每转换多少区块保存一次进度
+	private static final int CHECKPOINT_INTERVAL = 256;
+
+	// 控制台进度报告间隔（纳秒）
+	private static final long REPORT_INTERVAL_NANOS = 30_000_000_000L;
+
+	private static Path stateFile;
+	private static Job active;
+
+	// 已完成（或取消前已完成部分）的预转换区域，玩家进入时不再重复转换
+	private static final List<Area> finishedAreas = new ArrayList<>();
+
+	static void load(MinecraftServer server) {
+		stateFile = server.getSavePath(WorldSavePath.ROOT).resolve("randomblock").resolve("pregen.dat");
+		finishedAreas.clear();
+		active = null;
+		if (!Files.exists(stateFile)) return;
+
+		try {
+			NbtCompound nbt = NbtIo.readCompressed(stateFile.toFile());
+			NbtList finished = nbt.getList("Finished", NbtElement.COMPOUND_TYPE);
+			for (int i = 0; i < finished.size(); i++) {
+				finishedAreas.add(Area.fromNbt(finished.getCompound(i)));
+			}
+			if (nbt.contains("Active", NbtElement.COMPOUND_TYPE)) {
+				active = Job.fromNbt(nbt.getCompound("Active"));
+				server.sendMessage(Text.literal("恢复预转换任务: " + active.describe()));
+			}
+		} catch (IOException e) {
+			server.sendMessage(Text.literal("预转换进度读取失败: " + e.getMessage()));
+		}
+	}
+
+	static void unload(MinecraftServer server) {
+		if (active != null) {
+			active.releaseTickets(server);
+		}
+		save(server);
+		active = null;
+		finishedAreas.clear();
+	}
+
+	// 区块是否属于预转换区域（已完成或正在进行）
+	static boolean covers(ServerWorld world, ChunkPos chunkPos) {
+		RegistryKey<World> dimension = world.getRegistryKey();
+		if (active != null && active.area.contains(dimension, chunkPos)) return true;
+		for (Area area : finishedAreas) {
+			if (area.contains(dimension, chunkPos)) return true;
+		}
+		return false;
+	}
+
+	static boolean start(ServerWorld world, ChunkPos center, int minX, int minZ, int maxX, int maxZ) {
+		if (active != null) return false;
+		active = new Job(new Area(world.getRegistryKey(), minX, minZ, maxX, maxZ), center.x, center.z);
+		save(world.getServer());
+		return true;
+	}
+
+	static boolean setPaused(MinecraftServer server, boolean paused) {
+		if (active == null) return false;
+		active.paused = paused;
+		if (paused) {
+			active.releaseTickets(server);
+		}
+		active.resetRate();
+		save(server);
+		return true;
+	}
+
+	static boolean cancel(MinecraftServer server) {
+		if (active == null) return false;
+		active.releaseTickets(server);
+
+		// 已转换的螺旋前缀仍记为覆盖，避免玩家进入时用另一种方块再次转换
+		long done = active.checkpointIndex();
+		if (done > 0) {
+			finishedAreas.add(active.area.withSpiralLimit(active.centerX, active.centerZ, done));
+		}
+		active = null;
+		save(server);
+		return true;
+	}
+
+	static String status() {
+		return active == null ? "当前没有预转换任务" : active.describe();
+	}
+
+	static void tick(MinecraftServer server) {
+		Job job = active;
+		if (job == null || job.paused) return;
+
+		ServerWorld world = server.getWorld(job.area.dimension);
+		if (world == null) return;
+
+		// 服务器繁忙时不加载也不转换，等待下一tick
+		float mspt = server.getTickTime();
+		long budget = Math.min(MAX_BUDGET_NANOS, (long) ((TARGET_MSPT - mspt) * 1_000_000L));
+		if (budget <= 0) return;
+		long deadline = System.nanoTime() + budget;
+
+		// 按请求顺序转换已加载的区块，保证进度可以用单个索引记录
+		while (!job.pending.isEmpty() && System.nanoTime() < deadline) {
+			Pending head = job.pending.peek();
+			if (!head.excluded) {
+				WorldChunk chunk = world.getChunkManager().getWorldChunk(head.chunkPos.x, head.chunkPos.z);
+				if (chunk == null) break;
+
+				// 崩溃后会重放上次检查点之后的区块，用确定性方块保证重放结果一致
+				Block randomBlock = RandomBlockMod.getSeededBlock(world, head.chunkPos);
+				if (randomBlock != null) {
+					RandomBlockMod.convertChunk(head.chunkPos, world, randomBlock);
+				}
+				world.getChunkManager().removeTicket(PREGEN_TICKET, head.chunkPos, 0, head.chunkPos);
+			}
+			job.pending.poll();
+			job.processed++;
+			job.sessionProcessed++;
+
+			if (job.processed % CHECKPOINT_INTERVAL == 0) {
+				save(server);
+			}
+		}
+
+		// 补充新的加载请求，跳过区域外的螺旋位置同样受时间预算限制
+		while (job.pending.size() < MAX_IN_FLIGHT && job.nextIndex < job.spiral.totalSteps && System.nanoTime() < deadline) {
+			long index = job.nextIndex++;
+			ChunkPos chunkPos = job.spiral.positionOf(index);
+			if (!job.area.contains(chunkPos)) continue;
+
+			// 保护区域内的区块不加载，按顺序计为完成
+			boolean excluded = RandomBlockMod.isExcluded(world, chunkPos);
+			if (!excluded) {
+				world.getChunkManager().addTicket(PREGEN_TICKET, chunkPos, 0, chunkPos);
+			}
+			job.pending.add(new Pending(index, chunkPos, excluded));
+		}
+
+		if (job.pending.isEmpty() && job.nextIndex >= job.spiral.totalSteps) {
+			finishedAreas.add(job.area);
+			active = null;
+			save(server);
+			server.sendMessage(Text.literal("预转换完成: " + job.processed + " 个区块"));
+			return;
+		}
+
+		long now = System.nanoTime();
+		if (now - job.lastReport >= REPORT_INTERVAL_NANOS) {
+			job.lastReport = now;
+			server.sendMessage(Text.literal(job.describe()));
+		}
+	}
+
+	private static void save(MinecraftServer server) {
+		if (stateFile == null) return;
+
+		NbtCompound nbt = new NbtCompound();
+		NbtList finished = new NbtList();
+		for (Area area : finishedAreas) {
+			finished.add(area.toNbt());
+		}
+		nbt.put("Finished", finished);
+		if (active != null) {
+			nbt.put("Active", active.toNbt());
+		}
+
+		try {
+			Files.createDirectories(stateFile.getParent());
+			Path temp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+			NbtIo.writeCompressed(nbt, temp.toFile());
+			Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			server.sendMessage(Text.literal("预转换进度保存失败: " + e.getMessage()));
+		}
+	}
+
+	// 维度内的区块矩形（闭区间），取消的任务只覆盖螺旋索引小于limit的部分
+	static class Area {
+		final RegistryKey<World> dimension;
+		final int minX, minZ, maxX, maxZ;
+		final int centerX, centerZ;
+		final long limit;
+
+		Area(RegistryKey<World> dimension, int minX, int minZ, int maxX, int maxZ) {
+			this(dimension, minX, minZ, maxX, maxZ, 0, 0, Long.MAX_VALUE);
+		}
+
+		private Area(RegistryKey<World> dimension, int minX, int minZ, int maxX, int maxZ, int centerX, int centerZ, long limit) {
+			this.dimension = dimension;
+			this.minX = Math.min(minX, maxX);
+			this.minZ = Math.min(minZ, maxZ);
+			this.maxX = Math.max(minX, maxX);
+			this.maxZ = Math.max(minZ, maxZ);
+			this.centerX = centerX;
+			this.centerZ = centerZ;
+			this.limit = limit;
+		}
+
+		Area withSpiralLimit(int centerX, int centerZ, long limit) {
+			return new Area(dimension, minX, minZ, maxX, maxZ, centerX, centerZ, limit);
+		}
+
+		boolean contains(ChunkPos chunkPos) {
+			return chunkPos.x >= minX && chunkPos.x <= maxX && chunkPos.z >= minZ && chunkPos.z <= maxZ;
+		}
+
+		boolean contains(RegistryKey<World> dimension, ChunkPos chunkPos) {
+			return this.dimension == dimension && contains(chunkPos)
+					&& (limit == Long.MAX_VALUE || Spiral.indexOf(chunkPos.x - centerX, chunkPos.z - centerZ) < limit);
+		}
+
+		long size() {
+			return (long) (maxX - minX + 1) * (maxZ - minZ + 1);
+		}
+
+		NbtCompound toNbt() {
+			NbtCompound nbt = new NbtCompound();
+			nbt.putString("Dim", dimension.getValue().toString());
+			nbt.putInt("MinX", minX);
+			nbt.putInt("MinZ", minZ);
+			nbt.putInt("MaxX", maxX);
+			nbt.putInt("MaxZ", maxZ);
+			if (limit != Long.MAX_VALUE) {
+				nbt.putInt("SpiralX", centerX);
+				nbt.putInt("SpiralZ", centerZ);
+				nbt.putLong("Limit", limit);
+			}
+			return nbt;
+		}
+
+		static Area fromNbt(NbtCompound nbt) {
+			return new Area(RegistryKey.of(RegistryKeys.WORLD, new Identifier(nbt.getString("Dim"))),
+					nbt.getInt("MinX"), nbt.getInt("MinZ"), nbt.getInt("MaxX"), nbt.getInt("MaxZ"),
+					nbt.getInt("SpiralX"), nbt.getInt("SpiralZ"),
+					nbt.contains("Limit", NbtElement.LONG_TYPE) ? nbt.getLong("Limit") : Long.MAX_VALUE);
+		}
+	}
+
+	private static class Pending {
+		final long index;
+		final ChunkPos chunkPos;
+		final boolean excluded;
+
+		Pending(long index, ChunkPos chunkPos, boolean excluded) {
+			this.index = index;
+			this.chunkPos = chunkPos;
+			this.excluded = excluded;
+		}
+	}
+
+	private static class Job {
+		final Area area;
+		final int centerX, centerZ;
+		final Spiral spiral;
+		final Deque<Pending> pending = new ArrayDeque<>();
+		long nextIndex = 0;
+		long processed = 0;
+		boolean paused = false;
+
+		// 本次运行的统计，用于计算速度
+		long sessionStart = System.nanoTime();
+		long sessionProcessed = 0;
+		long lastReport = System.nanoTime();
+
+		Job(Area area, int centerX, int centerZ) {
+			this.area = area;
+			this.centerX = centerX;
+			this.centerZ = centerZ;
+			int radius = Math.max(Math.max(centerX - area.minX, area.maxX - centerX),
+					Math.max(centerZ - area.minZ, area.maxZ - centerZ));
+			this.spiral = new Spiral(centerX, centerZ, Math.max(radius, 0));
+		}
+
+		// 进度记录为最早未完成请求的螺旋索引
+		long checkpointIndex() {
+			return pending.isEmpty() ? nextIndex : pending.peek().index;
+		}
+
+		void releaseTickets(MinecraftServer server) {
+			ServerWorld world = server.getWorld(area.dimension);
+			if (world != null) {
+				for (Pending request : pending) {
+					if (request.excluded) continue;
+					world.getChunkManager().removeTicket(PREGEN_TICKET, request.chunkPos, 0, request.chunkPos);
+				}
+			}
+
+			// 从最早未完成的位置重新开始
+			long resumeIndex = checkpointIndex();
+			pending.clear();
+			nextIndex = resumeIndex;
+		}
+
+		void resetRate() {
+			sessionStart = System.nanoTime();
+			sessionProcessed = 0;
+		}
+
+		String describe() {
+			long total = area.size();
+			double seconds = (System.nanoTime() - sessionStart) / 1e9;
+			double rate = sessionProcessed / Math.max(seconds, 0.001);
+			String eta = rate > 0 ? formatDuration((long) ((total - processed) / rate)) : "未知";
+			return String.format("预转换%s [%d, %d]~[%d, %d]: %d/%d (%.1f%%)，速度 %.1f 区块/秒，预计剩余 %s",
+					paused ? "（已暂停）" : "",
+					area.minX, area.minZ, area.maxX, area.maxZ,
+					processed, total, processed * 100.0 / total, rate, eta);
+		}
+
+		NbtCompound toNbt() {
+			NbtCompound nbt = area.toNbt();
+			nbt.putInt("CenterX", centerX);
+			nbt.putInt("CenterZ", centerZ);
+			nbt.putLong("Index", checkpointIndex());
+			nbt.putLong("Processed", processed);
+			nbt.putBoolean("Paused", paused);
+			return nbt;
+		}
+
+		static Job fromNbt(NbtCompound nbt) {
+			Job job = new Job(Area.fromNbt(nbt), nbt.getInt("CenterX"), nbt.getInt("CenterZ"));
+			job.nextIndex = nbt.getLong("Index");
+			job.processed = nbt.getLong("Processed");
+			job.paused = nbt.getBoolean("Paused");
+			return job;
+		}
+
+		private static String formatDuration(long seconds) {
+			return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+		}
+	}
+
+	// 从中心向外的方形螺旋，索引与位置一一对应，双向换算均为O(1)
+	// 第r圈从索引(2r-1)^2、位置(r, 1-r)开始，依次沿+z、-x、-z、+x走完8r格
+	private static class Spiral {
+		final int centerX, centerZ;
+		final long totalSteps;
+
+		Spiral(int centerX, int centerZ, int radius) {
+			this.centerX = centerX;
+			this.centerZ = centerZ;
+			long side = 2L * radius + 1;
+			this.totalSteps = side * side;
+		}
+
+		// 相对中心的偏移在螺旋中的索引
+		static long indexOf(int dx, int dz) {
+			long r = Math.max(Math.abs(dx), Math.abs(dz));
+			if (r == 0) return 0;
+			long ringStart = (2 * r - 1) * (2 * r - 1);
+			if (dx == r && dz > -r) return ringStart + dz + r - 1;
+			if (dz == r && dx < r) return ringStart + 3 * r - 1 - dx;
+			if (dx == -r && dz < r) return ringStart + 5 * r - 1 - dz;
+			return ringStart + 7 * r - 1 + dx;
+		}
+
+		// 索引对应的区块位置
+		ChunkPos positionOf(long index) {
+			if (index == 0) return new ChunkPos(centerX, centerZ);
+			long r = (long) ((Math.sqrt((double) index) + 1) / 2);
+			// 修正浮点误差，使 (2r-1)^2 <= index < (2r+1)^2
+			while ((2 * r - 1) * (2 * r - 1) > index) r--;
+			while ((2 * r + 1) * (2 * r + 1) <= index) r++;
+			long k = index - (2 * r - 1) * (2 * r - 1);
+			long dx, dz;
+			if (k < 2 * r) {
+				dx = r;
+				dz = k - r + 1;
+			} else if (k < 4 * r) {
+				dx = 3 * r - 1 - k;
+				dz = r;
+			} else if (k < 6 * r) {
+				dx = -r;
+				dz = 5 * r - 1 - k;
+			} else {
+				dx = k - 7 * r + 1;
+				dz = -r;
+			}
+			return new ChunkPos(centerX + (int) dx, centerZ + (int) dz);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.example.randomblockmod;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.context.CommandContext;
+import net.minecraft.command.argument.ColumnPosArgumentType;
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.text.Text;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ColumnPos;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// /randomblock 管理命令
+public class RandomBlockCommand {
+
+	public static void register(CommandDispatcher<ServerCommandSource> dispatcher) {
+		dispatcher.register(CommandManager.literal("randomblock")
+				.requires(source -> source.hasPermissionLevel(2))
+				.then(CommandManager.literal("undo")
+						.executes(context -> undo(context, 0))
+						.then(CommandManager.argument("radius", IntegerArgumentType.integer(0, 32))
+								.executes(context -> undo(context, IntegerArgumentType.getInteger(context, "radius")))))
+				.then(CommandManager.literal("pregen")
+						.then(CommandManager.literal("radius")
+								.then(CommandManager.argument("radius", IntegerArgumentType.integer(0, PregenManager.MAX_RADIUS))
+										.executes(context -> pregenRadius(context, IntegerArgumentType.getInteger(context, "radius")))))
+						.then(CommandManager.literal("rect")
+								.then(CommandManager.argument("from", ColumnPosArgumentType.columnPos())
+										.then(CommandManager.argument("to", ColumnPosArgumentType.columnPos())
+												.executes(context -> pregenRect(context,
+														ColumnPosArgumentType.getColumnPos(context, "from"),
+														ColumnPosArgumentType.getColumnPos(context, "to"))))))
+						.then(CommandManager.literal("pause")
+								.executes(context -> pregenControl(context, PregenManager.setPaused(context.getSource().getServer(), true), "预转换已暂停")))
+						.then(CommandManager.literal("resume")
+								.executes(context -> pregenControl(context, PregenManager.setPaused(context.getSource().getServer(), false), "预转换已继续")))
+						.then(CommandManager.literal("cancel")
+								.executes(context -> pregenControl(context, PregenManager.cancel(context.getSource().getServer()), "预转换已取消")))
+						.then(CommandManager.literal("status")
+								.executes(context -> {
+									context.getSource().sendFeedback(() -> Text.literal(PregenManager.status()), false);
+									return 1;
+								})))
+				.then(CommandManager.literal("exclude")
+						.then(CommandManager.literal("add")
+								.then(CommandManager.argument("from", ColumnPosArgumentType.columnPos())
+										.then(CommandManager.argument("to", ColumnPosArgumentType.columnPos())
+												.executes(context -> excludeAdd(context, "未命名"))
+												.then(CommandManager.argument("name", StringArgumentType.greedyString())
+														.executes(context -> excludeAdd(context, StringArgumentType.getString(context, "name")))))))
+						.then(CommandManager.literal("remove")
+								.then(CommandManager.argument("id", IntegerArgumentType.integer(1))
+										.executes(context -> excludeRemove(context, IntegerArgumentType.getInteger(context, "id")))))
+						.then(CommandManager.literal("list")
+								.executes(RandomBlockCommand::excludeList))));
+	}
+
+	// 撤销以执行者所在区块为中心、指定半径内的转换
+	private static int undo(CommandContext<ServerCommandSource> context, int radius) {
+		ServerCommandSource source = context.getSource();
+		if (RandomBlockMod.journal == null) {
+			source.sendError(Text.literal("撤销日志未启用"));
+			return 0;
+		}
+
+		ServerWorld world = source.getWorld();
+		ChunkPos center = new ChunkPos(BlockPos.ofFloored(source.getPosition()));
+		List<ChunkPos> chunks = new ArrayList<>();
+		for (int x = center.x - radius; x <= center.x + radius; x++) {
+			for (int z = center.z - radius; z <= center.z + radius; z++) {
+				chunks.add(new ChunkPos(x, z));
+			}
+		}
+
+		source.sendFeedback(() -> Text.literal("正在查找 " + chunks.size() + " 个区块的撤销记录..."), true);
+		RandomBlockMod.journal.findRestores(world, chunks, RandomBlockMod.restoreQueue::add)
+				.thenAccept(found -> world.getServer().execute(() ->
+						source.sendFeedback(() -> Text.literal("找到 " + found + " 个可撤销区块，正在逐步恢复"), true)));
+		return chunks.size();
+	}
+
+	// 以执行者所在区块为中心的正方形区域
+	private static int pregenRadius(CommandContext<ServerCommandSource> context, int radius) {
+		ChunkPos center = new ChunkPos(BlockPos.ofFloored(context.getSource().getPosition()));
+		return pregen(context, center, center.x - radius, center.z - radius, center.x + radius, center.z + radius);
+	}
+
+	// 两个方块坐标围成的矩形，从中心向外转换
+	private static int pregenRect(CommandContext<ServerCommandSource> context, ColumnPos from, ColumnPos to) {
+		int minX = Math.min(from.x(), to.x()) >> 4;
+		int minZ = Math.min(from.z(), to.z()) >> 4;
+		int maxX = Math.max(from.x(), to.x()) >> 4;
+		int maxZ = Math.max(from.z(), to.z()) >> 4;
+		if (maxX - minX > 2 * PregenManager.MAX_RADIUS || maxZ - minZ > 2 * PregenManager.MAX_RADIUS) {
+			context.getSource().sendError(Text.literal("预转换区域过大，每边最多 " + (2 * PregenManager.MAX_RADIUS + 1) + " 个区块"));
+			return 0;
+		}
+		ChunkPos center = new ChunkPos((minX + maxX) >> 1, (minZ + maxZ) >> 1);
+		return pregen(context, center, minX, minZ, maxX, maxZ);
+	}
+
+	private static int pregen(CommandContext<ServerCommandSource> context, ChunkPos center, int minX, int minZ, int maxX, int maxZ) {
+		ServerCommandSource source = context.getSource();
+		if (!PregenManager.start(source.getWorld(), center, minX, minZ, maxX, maxZ)) {
+			source.sendError(Text.literal("已有预转换任务在进行，请先取消"));
+			return 0;
+		}
+		source.sendFeedback(() -> Text.literal(PregenManager.status()), true);
+		return 1;
+	}
+
+	private static int pregenControl(CommandContext<ServerCommandSource> context, boolean success, String message) {
+		if (!success) {
+			context.getSource().sendError(Text.literal("当前没有预转换任务"));
+			return 0;
+		}
+		context.getSource().sendFeedback(() -> Text.literal(message), true);
+		return 1;
+	}
+
+	// 两个方块坐标围成的矩形，覆盖到的区块都不参与转换
+	private static int excludeAdd(CommandContext<ServerCommandSource> context, String name) {
+		ServerCommandSource source = context.getSource();
+		if (RandomBlockMod.exclusions == null) {
+			source.sendError(Text.literal("保护区域未加载"));
+			return 0;
+		}
+
+		ColumnPos from = ColumnPosArgumentType.getColumnPos(context, "from");
+		ColumnPos to = ColumnPosArgumentType.getColumnPos(context, "to");
+		if (ExclusionZones.isTooLarge(from.x() >> 4, from.z() >> 4, to.x() >> 4, to.z() >> 4)) {
+			source.sendError(Text.literal("保护区域过大，每边最多 " + ExclusionZones.MAX_ZONE_SIDE + " 个区块"));
+			return 0;
+		}
+		try {
+			ExclusionZones.Zone zone = RandomBlockMod.exclusions.add(source.getWorld().getRegistryKey().getValue(), name,
+					from.x() >> 4, from.z() >> 4, to.x() >> 4, to.z() >> 4);
+			source.sendFeedback(() -> Text.literal("已添加保护区域 " + zone.describe()), true);
+			return 1;
+		} catch (IOException e) {
+			source.sendError(Text.literal("保护区域保存失败: " + e.getMessage()));
+			return 0;
+		}
+	}
+
+	private static int excludeRemove(CommandContext<ServerCommandSource> context, int id) {
+		ServerCommandSource source = context.getSource();
+		if (RandomBlockMod.exclusions == null) {
+			source.sendError(Text.literal("保护区域未加载"));
+			return 0;
+		}
+
+		try {
+			if (!RandomBlockMod.exclusions.remove(id)) {
+				source.sendError(Text.literal("保护区域 #" + id + " 不存在"));
+				return 0;
+			}
+			source.sendFeedback(() -> Text.literal("已删除保护区域 #" + id), true);
+			return 1;
+		} catch (IOException e) {
+			source.sendError(Text.literal("保护区域保存失败: " + e.getMessage()));
+			return 0;
+		}
+	}
+
+	private static int excludeList(CommandContext<ServerCommandSource> context) {
+		ServerCommandSource source = context.getSource();
+		if (RandomBlockMod.exclusions == null || RandomBlockMod.exclusions.getZones().isEmpty()) {
+			source.sendFeedback(() -> Text.literal("没有保护区域"), false);
+			return 0;
+		}
+
+		List<ExclusionZones.Zone> zones = RandomBlockMod.exclusions.getZones();
+		source.sendFeedback(() -> Text.literal("保护区域共 " + zones.size() + " 个:"), false);
+		for (ExclusionZones.Zone zone : zones) {
+			source.sendFeedback(() -> Text.literal(zone.describe()), false);
+		}
+		return zones.size();
+	}
+}
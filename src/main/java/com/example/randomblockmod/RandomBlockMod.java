@@ -1,19 +1,40 @@
 package com.example.randomblockmod;
 
 import net.fabricmc.api.ModInitializer;
+import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
+import net.minecraft.block.BlockEntityProvider;
 import net.minecraft.block.Blocks;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.network.packet.s2c.play.ChunkDataS2CPacket;
 import net.minecraft.registry.Registries;
+import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Identifier;
+import net.minecraft.util.WorldSavePath;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.Heightmap;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
 import net.minecraft.world.chunk.ChunkStatus;
+import net.minecraft.world.chunk.PalettedContainer;
+import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.chunk.light.ChunkLightProvider;
+import net.minecraft.world.chunk.light.LightingProvider;
+import net.minecraft.world.poi.PointOfInterestTypes;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.objects.Reference2ReferenceMap;
+import it.unimi.dsi.fastutil.objects.Reference2ReferenceOpenHashMap;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.Collectors;
@@ -26,6 +47,12 @@ public class RandomBlockMod implements ModInitializer {
 	// 不能被随机方块替换的保留方块列表
 	private static final Set<Identifier> PRESERVED_BLOCKS = new HashSet<>();
 
+	// 可作为随机方块的候选列表（首次使用时构建）
+	private static volatile List<Block> allowedBlocks;
+
+	// 保留方块实例集合，按引用比较，避免逐位置查询注册表（首次使用时构建）
+	private static volatile Set<Block> preservedBlockSet;
+
 	// 已处理区块的缓存（玩家位置）
 	private static final Map<ChunkPos, Set<UUID>> processedChunks = new ConcurrentHashMap<>();
 
@@ -35,13 +62,59 @@ public class RandomBlockMod implements ModInitializer {
 	// 异步任务线程池
 	private static final ExecutorService executor = Executors.newFixedThreadPool(2);
 
+	// 撤销日志（服务器运行期间有效）
+	static UndoJournal journal;
+
+	// 不参与转换的保护区域（服务器运行期间有效）
+	static ExclusionZones exclusions;
+
+	// 待执行的撤销恢复任务
+	static final Queue<UndoJournal.RestoreTask> restoreQueue = new ConcurrentLinkedQueue<>();
+
+	// 每tick用于撤销恢复的时间预算（纳秒）
+	private static final long RESTORE_BUDGET_NANOS = 5_000_000L;
+
+	// 同时请求加载的撤销区块数
+	private static final int RESTORE_IN_FLIGHT = 16;
+
 	@Override
 	public void onInitialize() {
-		// 初始化排除的方块列表
-		initExcludedBlocks();
+		// 初始化排除与保留的方块列表
+		initBlockRules();
 
-		// 初始化保留的方块列表
-		initPreservedBlocks();
+		// 撤销日志随服务器启停
+		ServerLifecycleEvents.SERVER_STARTED.register(server -> {
+			journal = new UndoJournal(server.getSavePath(WorldSavePath.ROOT).resolve("randomblock").resolve("undo"));
+			journal.compact(server);
+		});
+
+		// 保护区域保存在存档目录
+		ServerLifecycleEvents.SERVER_STARTED.register(server -> {
+			Path file = server.getSavePath(WorldSavePath.ROOT).resolve("randomblock").resolve("exclusions.dat");
+			try {
+				exclusions = ExclusionZones.load(file);
+			} catch (IOException e) {
+				server.sendMessage(net.minecraft.text.Text.literal("保护区域读取失败: " + e.getMessage()));
+				exclusions = new ExclusionZones(file);
+			}
+		});
+		ServerLifecycleEvents.SERVER_STOPPED.register(server -> exclusions = null);
+
+		// 预转换任务随服务器启停，进度保存在存档目录
+		ServerLifecycleEvents.SERVER_STARTED.register(PregenManager::load);
+		ServerLifecycleEvents.SERVER_STOPPING.register(PregenManager::unload);
+		ServerTickEvents.END_SERVER_TICK.register(PregenManager::tick);
+		ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
+			restoreQueue.clear();
+			if (journal != null) {
+				journal.close();
+				journal = null;
+			}
+		});
+
+		// 注册 /randomblock 命令
+		CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) ->
+				RandomBlockCommand.register(dispatcher));
 
 		// 玩家加入游戏时获取uuid
 		ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> {
@@ -55,11 +128,39 @@ public class RandomBlockMod implements ModInitializer {
 			if (!chunkTaskQueue.isEmpty()) {
 				ChunkTask task = chunkTaskQueue.poll();
 				if (task != null) {
+					task.dequeued(chunkTaskQueue.size());
 					processChunk(task.chunkPos, task.world, task.randomBlock);
 				}
 			}
 		});
 
+		// 在时间预算内逐步执行撤销恢复
+		ServerTickEvents.END_SERVER_TICK.register(server -> {
+			// 为队首的若干任务请求加载区块，区块加载完成前不恢复，避免在主线程同步加载
+			int requested = 0;
+			for (UndoJournal.RestoreTask task : restoreQueue) {
+				if (requested++ >= RESTORE_IN_FLIGHT) break;
+				task.requestLoad();
+			}
+
+			long deadline = System.nanoTime() + RESTORE_BUDGET_NANOS;
+			while (System.nanoTime() < deadline) {
+				UndoJournal.RestoreTask task = restoreQueue.peek();
+				if (task == null || !task.isLoaded()) break;
+				if (!task.step(deadline)) break;
+
+				restoreQueue.poll();
+				task.release();
+				if (task.isCorrupt()) continue;
+				if (journal != null) {
+					journal.markRestored(task.world, task.chunkPos);
+				}
+				server.sendMessage(net.minecraft.text.Text.literal(
+						"区块 [" + task.chunkPos.x + ", " + task.chunkPos.z + "] 已撤销转换"
+				));
+			}
+		});
+
 		// 主要玩家检测逻辑
 		ServerTickEvents.START_SERVER_TICK.register(server -> {
 			server.getPlayerManager().getPlayerList().forEach(player -> {
@@ -73,6 +174,14 @@ public class RandomBlockMod implements ModInitializer {
 				int chunkZ = (int) player.getZ() >> 4;
 				ChunkPos currentChunk = new ChunkPos(chunkX, chunkZ);
 
+				// 保护区域内的区块不做任何处理
+				if (isExcluded((ServerWorld) world, currentChunk))
+					return;
+
+				// 预转换区域由预转换任务负责
+				if (PregenManager.covers((ServerWorld) world, currentChunk))
+					return;
+
 				// 检查玩家是否已处理过此区块
 				Set<UUID> playersInChunk = processedChunks.computeIfAbsent(
 						currentChunk, k -> ConcurrentHashMap.newKeySet());
@@ -85,7 +194,18 @@ public class RandomBlockMod implements ModInitializer {
 		});
 	}
 
-	private void initExcludedBlocks() {
+	// 初始化方块规则（模组入口与离线转换器共用）
+	static void initBlockRules() {
+		if (!EXCLUDED_BLOCKS.isEmpty()) return;
+
+		// 初始化排除的方块列表
+		initExcludedBlocks();
+
+		// 初始化保留的方块列表
+		initPreservedBlocks();
+	}
+
+	private static void initExcludedBlocks() {
 		// 手动添加重力方块（沙子、沙砾）
 		// 手动添加重力方块（沙子、沙砾）
 		EXCLUDED_BLOCKS.add(Registries.BLOCK.getId(Blocks.SAND));
@@ -653,7 +773,7 @@ public class RandomBlockMod implements ModInitializer {
 
 	}
 
-	private void initPreservedBlocks() {
+	private static void initPreservedBlocks() {
 		// 保留空气类方块
 		PRESERVED_BLOCKS.add(Registries.BLOCK.getId(Blocks.AIR));
 		PRESERVED_BLOCKS.add(Registries.BLOCK.getId(Blocks.CAVE_AIR));
@@ -700,12 +820,17 @@ public class RandomBlockMod implements ModInitializer {
 	}
 
 	private void processNewChunk(ChunkPos chunkPos, ServerWorld world) {
+		ConversionEvents.Detection event = new ConversionEvents.Detection();
+		event.begin();
+
+		if (isExcluded(world, chunkPos)) return;
+
 		// 使用更稳定的方式获取区块
 		Chunk chunk = world.getChunkManager().getChunk(chunkPos.x, chunkPos.z, ChunkStatus.FULL, false);
 		if (chunk == null) return;
 
 		executor.execute(() -> {
-			Block randomBlock = getRandomBlock(world);
+			Block randomBlock = getRandomBlock(world, chunkPos);
 			if (randomBlock != null) {
 				Identifier blockId = Registries.BLOCK.getId(randomBlock);
 				world.getServer().sendMessage(net.minecraft.text.Text.literal(
@@ -714,63 +839,78 @@ public class RandomBlockMod implements ModInitializer {
 				chunkTaskQueue.add(new ChunkTask(chunkPos, world, randomBlock));
 			}
 		});
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.chunkX = chunkPos.x;
+			event.chunkZ = chunkPos.z;
+			event.dimension = ConversionEvents.dimension(world);
+			event.commit();
+		}
+	}
+
+	static Block getRandomBlock(ServerWorld world, ChunkPos chunkPos) {
+		return selectBlock(world, chunkPos, world.getRandom());
 	}
 
-	private Block getRandomBlock(ServerWorld world) {
-		List<Block> allowedBlocks = new ArrayList<>();
+	// 按世界种子与区块坐标确定方块，重复转换同一区块结果一致
+	static Block getSeededBlock(ServerWorld world, ChunkPos chunkPos) {
+		return selectBlock(world, chunkPos, seededRandom(world.getSeed(), chunkPos));
+	}
 
-		for (Block block : Registries.BLOCK) {
-			Identifier id = Registries.BLOCK.getId(block);
+	static net.minecraft.util.math.random.Random seededRandom(long seed, ChunkPos chunkPos) {
+		return net.minecraft.util.math.random.Random.create(seed ^ chunkPos.toLong() * 0x9E3779B97F4A7C15L);
+	}
 
-			// 跳过排除方块和保留方块
-			if (!EXCLUDED_BLOCKS.contains(id) && !PRESERVED_BLOCKS.contains(id)) {
-				allowedBlocks.add(block);
-			}
+	private static Block selectBlock(ServerWorld world, ChunkPos chunkPos, net.minecraft.util.math.random.Random random) {
+		ConversionEvents.Selection event = new ConversionEvents.Selection();
+		event.begin();
+		Block randomBlock = getRandomBlock(random);
+		event.end();
+		if (event.shouldCommit()) {
+			event.chunkX = chunkPos.x;
+			event.chunkZ = chunkPos.z;
+			event.dimension = ConversionEvents.dimension(world);
+			event.block = randomBlock == null ? null : Registries.BLOCK.getId(randomBlock).toString();
+			event.candidates = getAllowedBlocks().size();
+			event.commit();
 		}
+		return randomBlock;
+	}
 
-		if (allowedBlocks.isEmpty()) {
+	static Block getRandomBlock(net.minecraft.util.math.random.Random random) {
+		List<Block> allowed = getAllowedBlocks();
+		if (allowed.isEmpty()) {
 			return null;
 		}
 
 		// 随机选择一个方块用于整个区块
-		return allowedBlocks.get(world.getRandom().nextInt(allowedBlocks.size()));
+		return allowed.get(random.nextInt(allowed.size()));
 	}
 
-	private void processChunk(ChunkPos chunkPos, ServerWorld world, Block randomBlock) {
-		// 获取区块边界
-		int startX = chunkPos.getStartX();
-		int startZ = chunkPos.getStartZ();
-		int endX = chunkPos.getEndX();
-		int endZ = chunkPos.getEndZ();
-		int blocksReplaced = 0;
-
-		// 遍历区块内每个位置
-		for (int x = startX; x <= endX; x++) {
-			for (int z = startZ; z <= endZ; z++) {
-				for (int y = world.getBottomY(); y < world.getTopY(); y++) {
-					BlockPos pos = new BlockPos(x, y, z);
-					BlockState currentState = world.getBlockState(pos);
-					Block currentBlock = currentState.getBlock();
-					Identifier id = Registries.BLOCK.getId(currentBlock);
-
-					// 检查是否为保留方块（箱子、空气、液体等）
-					if (PRESERVED_BLOCKS.contains(id)) {
-						continue;
-					}
-
-					// 更新方块状态
-					world.setBlockState(pos, randomBlock.getDefaultState(), Block.NOTIFY_LISTENERS);
-					blocksReplaced++;
+	// 方块注册表在启动后不再变化，候选列表只需构建一次
+	private static List<Block> getAllowedBlocks() {
+		List<Block> allowed = allowedBlocks;
+		if (allowed == null) {
+			allowed = new ArrayList<>();
+			for (Block block : Registries.BLOCK) {
+				Identifier id = Registries.BLOCK.getId(block);
+
+				// 跳过排除方块和保留方块
+				if (!EXCLUDED_BLOCKS.contains(id) && !PRESERVED_BLOCKS.contains(id)) {
+					allowed.add(block);
 				}
 			}
-
-			// 每列处理完添加短暂延迟（减少服务器卡顿）
-			try {
-				Thread.sleep(1);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-			}
+			allowedBlocks = allowed = Collections.unmodifiableList(allowed);
 		}
+		return allowed;
+	}
+
+	private void processChunk(ChunkPos chunkPos, ServerWorld world, Block randomBlock) {
+		// 入队之后才添加的保护区域同样生效
+		if (isExcluded(world, chunkPos)) return;
+
+		int blocksReplaced = convertChunk(chunkPos, world, randomBlock);
 
 		// 处理完成后输出统计信息
 		Identifier blockId = Registries.BLOCK.getId(randomBlock);
@@ -781,15 +921,294 @@ public class RandomBlockMod implements ModInitializer {
 		));
 	}
 
+	// 替换区块内所有非保留方块，返回替换的方块数
+	static int convertChunk(ChunkPos chunkPos, ServerWorld world, Block randomBlock) {
+		// 排队或预转换请求发出后才添加的保护区域，在真正写入前再检查一次
+		if (isExcluded(world, chunkPos)) return 0;
+
+		ConversionEvents.Commit commitEvent = new ConversionEvents.Commit();
+		commitEvent.begin();
+
+		WorldChunk chunk = world.getChunk(chunkPos.x, chunkPos.z);
+		BlockState newState = randomBlock.getDefaultState();
+		int blocksReplaced = 0;
+		int sectionsRewritten = 0;
+
+		// 转换前记录撤销快照
+		if (journal != null) {
+			journal.recordSnapshot(world, chunkPos, randomBlock, chunk, RandomBlockMod::isConvertible);
+		}
+
+		// 先读取方块实体位置：保留方块上的不做处理，其余的在重建区段前批量移除
+		List<BlockPos> removedBlockEntities = new ArrayList<>();
+		for (BlockPos pos : chunk.getBlockEntityPositions()) {
+			if (isConvertible(chunk.getBlockState(pos))) {
+				removedBlockEntities.add(pos);
+			}
+		}
+		removeBlockEntities(world, chunk, removedBlockEntities, newState);
+
+		// 按区段重建方块容器
+		LongList lightChecks = new LongArrayList();
+		boolean rebuilt = false;
+		ChunkSection[] sections = chunk.getSectionArray();
+		for (int i = 0; i < sections.length; i++) {
+			ChunkSection section = sections[i];
+			int sectionY = chunk.sectionIndexToCoord(i);
+			ConversionEvents.SectionRewrite sectionEvent = new ConversionEvents.SectionRewrite();
+			sectionEvent.begin();
+
+			int sectionReplaced = 0;
+			if (!section.isEmpty() && section.hasAny(RandomBlockMod::isConvertible)) {
+				sectionReplaced = rebuildSection(world, chunk, i, newState, lightChecks);
+				rebuilt = true;
+			}
+
+			sectionEvent.end();
+			if (sectionEvent.shouldCommit()) {
+				sectionEvent.chunkX = chunkPos.x;
+				sectionEvent.chunkZ = chunkPos.z;
+				sectionEvent.sectionY = sectionY;
+				sectionEvent.dimension = ConversionEvents.dimension(world);
+				sectionEvent.block = Registries.BLOCK.getId(randomBlock).toString();
+				sectionEvent.blocksReplaced = sectionReplaced;
+				sectionEvent.commit();
+			}
+			if (sectionReplaced > 0) {
+				sectionsRewritten++;
+				blocksReplaced += sectionReplaced;
+			}
+		}
+
+		// 重建的区段绕过了逐方块更新，需要刷新高度图并标记保存
+		if (rebuilt) {
+			EnumSet<Heightmap.Type> heightmapTypes = EnumSet.noneOf(Heightmap.Type.class);
+			for (Map.Entry<Heightmap.Type, Heightmap> entry : chunk.getHeightmaps()) {
+				heightmapTypes.add(entry.getKey());
+			}
+			Heightmap.populateHeightmaps(chunk, heightmapTypes);
+			chunk.setNeedsSaving(true);
+		}
+
+		commitEvent.end();
+		if (commitEvent.shouldCommit()) {
+			commitEvent.chunkX = chunkPos.x;
+			commitEvent.chunkZ = chunkPos.z;
+			commitEvent.dimension = ConversionEvents.dimension(world);
+			commitEvent.block = Registries.BLOCK.getId(randomBlock).toString();
+			commitEvent.sectionsRewritten = sectionsRewritten;
+			commitEvent.blocksReplaced = blocksReplaced;
+			commitEvent.blockEntitiesRemoved = removedBlockEntities.size();
+			commitEvent.commit();
+		}
+
+		if (rebuilt) {
+			relightChunk(world, chunk, randomBlock, lightChecks);
+			resyncChunk(world, chunk, randomBlock);
+		}
+		return blocksReplaced;
+	}
+
+	// 批量移除将被替换位置上的方块实体，不经过逐方块的setBlockState
+	// 仍调用旧方块的onStateReplaced，容器物品、讲台上的书、营火上的食物照常掉落
+	private static void removeBlockEntities(ServerWorld world, WorldChunk chunk, List<BlockPos> positions, BlockState newState) {
+		for (BlockPos pos : positions) {
+			chunk.getBlockState(pos).onStateReplaced(world, pos, newState, false);
+			chunk.removeBlockEntity(pos);
+		}
+	}
+
+	// 用新的最小调色板容器重建区段，整段都被替换时直接使用单值容器
+	private static int rebuildSection(ServerWorld world, WorldChunk chunk, int index, BlockState newState, LongList lightChecks) {
+		ChunkSection section = chunk.getSectionArray()[index];
+		PalettedContainer<BlockState> states = section.getBlockStateContainer();
+		int startX = chunk.getPos().getStartX();
+		int startY = chunk.sectionIndexToCoord(index) << 4;
+		int startZ = chunk.getPos().getStartZ();
+		BlockPos origin = new BlockPos(startX, startY, startZ);
+
+		// 遍历调色板建立 旧状态 → 目标状态 的映射，每个调色板条目只判断一次是否保留
+		// 状态超过256种的区段使用全局调色板，其hasAny不调用判断函数直接返回true，此时映射在遍历中补全
+		Reference2ReferenceMap<BlockState, BlockState> mapping = new Reference2ReferenceOpenHashMap<>();
+		boolean enumerated = !states.hasAny(state -> {
+			mapping.put(state, isConvertible(state) ? newState : state);
+			return false;
+		});
+
+		// 先按调色板判断，能跳过逐方块遍历就跳过；调色板未能枚举时全部按逐位置处理
+		boolean uniform = enumerated;
+		boolean checkLight = !enumerated;
+		boolean checkPoi = !enumerated || PointOfInterestTypes.getTypeForState(newState).isPresent();
+		for (Reference2ReferenceMap.Entry<BlockState, BlockState> entry : mapping.reference2ReferenceEntrySet()) {
+			BlockState state = entry.getKey();
+			if (entry.getValue() != newState) {
+				uniform = false;
+				continue;
+			}
+			checkLight |= ChunkLightProvider.needsLightUpdate(chunk, origin, state, newState);
+			checkPoi |= PointOfInterestTypes.getTypeForState(state).isPresent();
+		}
+		// 漏斗、熔炉等新方块需要在每个替换位置创建方块实体
+		boolean createBlockEntities = newState.hasBlockEntity();
+
+		// 整段替换时为单值调色板容器，否则从空气开始，调色板只随实际写入的状态增长
+		BlockState air = Blocks.AIR.getDefaultState();
+		PalettedContainer<BlockState> container = new PalettedContainer<>(Block.STATE_IDS, uniform ? newState : air,
+				PalettedContainer.PaletteProvider.BLOCK_STATE);
+		LongList blockEntityPositions = new LongArrayList();
+		int replaced = 0;
+		if (uniform && !checkLight && !checkPoi && !createBlockEntities) {
+			replaced = 4096;
+		} else {
+			// 引擎不提供调色板级的重映射，按映射表逐位置写入，不再逐方块判断是否保留
+			boolean perPosition = checkLight || checkPoi || createBlockEntities;
+			BlockPos.Mutable pos = new BlockPos.Mutable();
+			for (int y = 0; y < 16; y++) {
+				for (int z = 0; z < 16; z++) {
+					for (int x = 0; x < 16; x++) {
+						BlockState state = states.get(x, y, z);
+						BlockState target = mapping.get(state);
+						if (target == null) {
+							target = isConvertible(state) ? newState : state;
+							mapping.put(state, target);
+						}
+						if (target != newState) {
+							if (state != air) container.set(x, y, z, state);
+							continue;
+						}
+						if (!uniform) container.set(x, y, z, newState);
+						replaced++;
+						if (!perPosition) continue;
+
+						pos.set(startX + x, startY + y, startZ + z);
+						if (checkLight && ChunkLightProvider.needsLightUpdate(chunk, pos, state, newState)) {
+							lightChecks.add(pos.asLong());
+						}
+						// 村民床位、工作站等兴趣点需要同步移除或注册
+						if (checkPoi) {
+							world.onBlockChanged(pos.toImmutable(), state, newState);
+						}
+						if (createBlockEntities) {
+							blockEntityPositions.add(pos.asLong());
+						}
+					}
+				}
+			}
+		}
+
+		ChunkSection replacement = new ChunkSection(chunk.sectionIndexToCoord(index), container, section.getBiomeContainer());
+		chunk.getSectionArray()[index] = replacement;
+		if (section.isEmpty() != replacement.isEmpty()) {
+			world.getChunkManager().getLightingProvider().setSectionStatus(
+					ChunkSectionPos.from(chunk.getPos(), chunk.sectionIndexToCoord(index)), replacement.isEmpty());
+		}
+
+		// 方块实体只能在新区段装入后添加，addBlockEntity会校验该位置的方块状态并注册tick
+		if (createBlockEntities) {
+			BlockEntityProvider provider = (BlockEntityProvider) newState.getBlock();
+			for (int i = 0; i < blockEntityPositions.size(); i++) {
+				BlockEntity blockEntity = provider.createBlockEntity(BlockPos.fromLong(blockEntityPositions.getLong(i)), newState);
+				if (blockEntity != null) {
+					chunk.addBlockEntity(blockEntity);
+				}
+			}
+		}
+		return replaced;
+	}
+
+	// 刷新天空光表面，只对透光度或亮度变化的位置排队光照检查
+	private static void relightChunk(ServerWorld world, WorldChunk chunk, Block randomBlock, LongList lightChecks) {
+		ConversionEvents.Relight event = new ConversionEvents.Relight();
+		event.begin();
+
+		chunk.getChunkSkyLight().refreshSurfaceY(chunk);
+		LightingProvider lighting = world.getChunkManager().getLightingProvider();
+		for (int i = 0; i < lightChecks.size(); i++) {
+			lighting.checkBlock(BlockPos.fromLong(lightChecks.getLong(i)));
+		}
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.chunkX = chunk.getPos().x;
+			event.chunkZ = chunk.getPos().z;
+			event.dimension = ConversionEvents.dimension(world);
+			event.block = Registries.BLOCK.getId(randomBlock).toString();
+			event.lightChecks = lightChecks.size();
+			event.commit();
+		}
+	}
+
+	// 整块重发区块数据，代替大量单方块更新包
+	private static void resyncChunk(ServerWorld world, WorldChunk chunk, Block randomBlock) {
+		ConversionEvents.Resync event = new ConversionEvents.Resync();
+		event.begin();
+
+		List<ServerPlayerEntity> players = world.getChunkManager().threadedAnvilChunkStorage
+				.getPlayersWatchingChunk(chunk.getPos(), false);
+		if (!players.isEmpty()) {
+			ChunkDataS2CPacket packet = new ChunkDataS2CPacket(chunk, world.getLightingProvider(), null, null);
+			for (ServerPlayerEntity player : players) {
+				player.networkHandler.sendPacket(packet);
+			}
+		}
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.chunkX = chunk.getPos().x;
+			event.chunkZ = chunk.getPos().z;
+			event.dimension = ConversionEvents.dimension(world);
+			event.block = Registries.BLOCK.getId(randomBlock).toString();
+			event.players = players.size();
+			event.commit();
+		}
+	}
+
+	static boolean isExcluded(ServerWorld world, ChunkPos chunkPos) {
+		return exclusions != null && exclusions.isExcluded(world.getRegistryKey().getValue(), chunkPos.x, chunkPos.z);
+	}
+
+	// 非保留方块才会被替换
+	private static boolean isConvertible(BlockState state) {
+		Set<Block> preserved = preservedBlockSet;
+		if (preserved == null) {
+			preserved = Collections.newSetFromMap(new IdentityHashMap<>());
+			for (Identifier id : PRESERVED_BLOCKS) {
+				preserved.add(Registries.BLOCK.get(id));
+			}
+			preservedBlockSet = preserved;
+		}
+		return !preserved.contains(state.getBlock());
+	}
+
+	static boolean isPreserved(Identifier id) {
+		return PRESERVED_BLOCKS.contains(id);
+	}
+
 	private static class ChunkTask {
 		final ChunkPos chunkPos;
 		final ServerWorld world;
 		final Block randomBlock;
 
+		// 入队到被主线程取出之间的等待
+		final ConversionEvents.QueueWait queueWait = new ConversionEvents.QueueWait();
+
 		ChunkTask(ChunkPos chunkPos, ServerWorld world, Block randomBlock) {
 			this.chunkPos = chunkPos;
 			this.world = world;
 			this.randomBlock = randomBlock;
+			queueWait.begin();
+		}
+
+		void dequeued(int queueSize) {
+			queueWait.end();
+			if (queueWait.shouldCommit()) {
+				queueWait.chunkX = chunkPos.x;
+				queueWait.chunkZ = chunkPos.z;
+				queueWait.dimension = ConversionEvents.dimension(world);
+				queueWait.block = Registries.BLOCK.getId(randomBlock).toString();
+				queueWait.queueSize = queueSize;
+				queueWait.commit();
+			}
 		}
 	}
 }
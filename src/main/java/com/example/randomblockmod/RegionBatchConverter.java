@@ -0,0 +1,439 @@
+package com.example.randomblockmod;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.block.Block;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtHelper;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.registry.RegistryKeys;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.chunk.ChunkStatus;
+import net.minecraft.world.dimension.DimensionType;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+// 离线批量转换存档区域文件，无需启动服务器
+// 用法：./gradlew convertRegions --args="<存档目录> [维度] [种子，默认读取level.dat] [线程数] [--keep-containers]"
+// 离线转换无法像服务器那样让容器物品掉落，被替换位置上的方块实体会连同内容一起删除并在日志中统计；
+// 指定 --keep-containers 时，带有物品的方块实体（箱子、熔炉、讲台等）所在位置按保留方块处理
+public class RegionBatchConverter {
+
+	private static final int SECTOR_SIZE = 4096;
+	private static final int CHUNKS_PER_REGION = 1024;
+
+	// 区块数据压缩方式
+	private static final byte COMPRESSION_GZIP = 1;
+	private static final byte COMPRESSION_ZLIB = 2;
+	private static final byte COMPRESSION_NONE = 3;
+	private static final byte COMPRESSION_EXTERNAL = (byte) 0x80;
+
+	// 记录已完成区域文件，用于崩溃后续传
+	private static final String PROGRESS_FILE = "randomblock-convert.done";
+
+	private final Path regionDir;
+	private final Identifier dimension;
+	private final long seed;
+	private final ExclusionZones exclusions;
+	private final boolean keepContainers;
+	private final Set<String> finishedRegions = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger regionsDone = new AtomicInteger();
+	private final AtomicLong chunksConverted = new AtomicLong();
+	private final AtomicLong blockEntitiesRemoved = new AtomicLong();
+	private final AtomicLong contentsLost = new AtomicLong();
+	private int regionsTotal;
+	private long startTime;
+
+	RegionBatchConverter(Path regionDir, Identifier dimension, long seed, ExclusionZones exclusions, boolean keepContainers) {
+		this.regionDir = regionDir;
+		this.dimension = dimension;
+		this.seed = seed;
+		this.exclusions = exclusions;
+		this.keepContainers = keepContainers;
+	}
+
+	public static void main(String[] rawArgs) throws Exception {
+		List<String> options = new ArrayList<>(Arrays.asList(rawArgs));
+		boolean keepContainers = options.remove("--keep-containers");
+		String[] args = options.toArray(new String[0]);
+		if (args.length < 1) {
+			System.out.println("用法: RegionBatchConverter <存档目录> [维度] [种子，默认读取level.dat] [线程数] [--keep-containers]");
+			return;
+		}
+		Path worldDir = Paths.get(args[0]);
+		Identifier dimension = new Identifier(args.length > 1 ? args[1] : "minecraft:overworld");
+		// 默认使用存档的世界种子，与服务器端预转换为同一区块选出相同方块
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : readWorldSeed(worldDir);
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+		// 离线环境下手动加载方块注册表
+		SharedConstants.createGameVersion();
+		Bootstrap.initialize();
+		RandomBlockMod.initBlockRules();
+
+		Path regionDir = DimensionType.getSaveDirectory(RegistryKey.of(RegistryKeys.WORLD, dimension), worldDir).resolve("region");
+
+		// 与服务器共用存档中的保护区域
+		ExclusionZones exclusions = ExclusionZones.load(worldDir.resolve("randomblock").resolve("exclusions.dat"));
+		new RegionBatchConverter(regionDir, dimension, seed, exclusions, keepContainers).run(threads);
+	}
+
+	private static long readWorldSeed(Path worldDir) throws IOException {
+		NbtCompound data = NbtIo.readCompressed(worldDir.resolve("level.dat").toFile()).getCompound("Data");
+		NbtCompound settings = data.getCompound("WorldGenSettings");
+		if (!settings.contains("seed", NbtElement.LONG_TYPE)) {
+			throw new IOException("level.dat 中没有世界种子，请在参数中指定种子");
+		}
+		return settings.getLong("seed");
+	}
+
+	void run(int threads) throws IOException, InterruptedException {
+		Path progressFile = regionDir.resolve(PROGRESS_FILE);
+		if (Files.exists(progressFile)) {
+			finishedRegions.addAll(Files.readAllLines(progressFile, StandardCharsets.UTF_8));
+		}
+
+		List<Path> regions;
+		try (Stream<Path> files = Files.list(regionDir)) {
+			regions = files.filter(file -> file.getFileName().toString().matches("r\\.-?\\d+\\.-?\\d+\\.mca"))
+					.filter(file -> !finishedRegions.contains(file.getFileName().toString()))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+		regionsTotal = regions.size();
+		System.out.println("待转换区域文件: " + regionsTotal + "（已完成 " + finishedRegions.size() + "），线程数: " + threads);
+
+		startTime = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try (BufferedWriter progress = Files.newBufferedWriter(progressFile, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			for (Path region : regions) {
+				pool.execute(() -> {
+					try {
+						RegionStats stats = convertRegion(region);
+						markFinished(progress, region, stats);
+					} catch (IOException | RuntimeException e) {
+						System.out.println("区域文件 " + region.getFileName() + " 转换失败: " + e);
+					}
+				});
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		}
+
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		System.out.printf("转换完成: %d 个区域, %d 个区块, 移除方块实体 %d 个（其中 %d 个带有物品）, 用时 %.1f 秒%n",
+				regionsDone.get(), chunksConverted.get(), blockEntitiesRemoved.get(), contentsLost.get(), seconds);
+	}
+
+	private void markFinished(BufferedWriter progress, Path region, RegionStats stats) throws IOException {
+		synchronized (progress) {
+			progress.write(region.getFileName().toString());
+			progress.newLine();
+			progress.flush();
+		}
+
+		int done = regionsDone.incrementAndGet();
+		long chunks = chunksConverted.addAndGet(stats.converted);
+		blockEntitiesRemoved.addAndGet(stats.blockEntitiesRemoved);
+		contentsLost.addAndGet(stats.contentsLost);
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		double eta = seconds / done * (regionsTotal - done);
+		System.out.printf("[%d/%d] %s: %d 个区块, 移除方块实体 %d 个（其中 %d 个带有物品）, 累计 %.0f 区块/秒, 预计剩余 %.0f 秒%n",
+				done, regionsTotal, region.getFileName(), stats.converted, stats.blockEntitiesRemoved, stats.contentsLost,
+				chunks / Math.max(seconds, 0.001), eta);
+	}
+
+	// 读取（内存映射）并重写一个区域文件，返回转换统计
+	RegionStats convertRegion(Path region) throws IOException {
+		String[] parts = region.getFileName().toString().split("\\.");
+		int regionX = Integer.parseInt(parts[1]);
+		int regionZ = Integer.parseInt(parts[2]);
+
+		// 没有完整文件头的区域文件不处理，也不创建临时文件
+		RegionStats stats = new RegionStats();
+		if (Files.size(region) < SECTOR_SIZE * 2) return stats;
+
+		Path temp = region.resolveSibling(region.getFileName() + ".tmp");
+		try (FileChannel in = FileChannel.open(region, StandardOpenOption.READ);
+			 FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long size = in.size();
+			MappedByteBuffer source = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			ByteBuffer header = ByteBuffer.allocate(SECTOR_SIZE * 2);
+			int nextSector = 2;
+			out.position((long) nextSector * SECTOR_SIZE);
+
+			for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+				int location = source.getInt(i * 4);
+				int timestamp = source.getInt(SECTOR_SIZE + i * 4);
+				long start = (long) (location >>> 8) * SECTOR_SIZE;
+				if (location == 0 || start + 5 > size) continue;
+
+				int length = source.getInt((int) start);
+				if (length <= 0 || start + 4 + length > size) continue;
+				byte compression = source.get((int) start + 4);
+				byte[] raw = new byte[length - 1];
+				source.get((int) start + 5, raw);
+
+				byte[] payload = raw;
+				byte payloadCompression = compression;
+				RegionStats chunkStats = new RegionStats();
+				ChunkPos chunkPos = new ChunkPos((regionX << 5) + (i & 31), (regionZ << 5) + (i >> 5));
+				if ((compression & COMPRESSION_EXTERNAL) == 0) {
+					NbtCompound chunk = exclusions.isExcluded(dimension, chunkPos.x, chunkPos.z) ? null : readChunk(compression, raw);
+					if (chunk != null && convertChunk(chunk, chunkPos, chunkStats)) {
+						payload = writeChunk(chunk);
+						payloadCompression = COMPRESSION_ZLIB;
+					}
+				}
+
+				int sectors = (payload.length + 5 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+				if (sectors > 255 && payload != raw) {
+					// 超出区域文件单区块上限时保留原数据
+					System.out.println("区块 [" + chunkPos.x + ", " + chunkPos.z + "] 转换后超过 255 个扇区，保留原数据");
+					payload = raw;
+					payloadCompression = compression;
+					sectors = (payload.length + 5 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+				}
+
+				ByteBuffer chunkBuffer = ByteBuffer.allocate(sectors * SECTOR_SIZE);
+				chunkBuffer.putInt(payload.length + 1);
+				chunkBuffer.put(payloadCompression);
+				chunkBuffer.put(payload);
+				chunkBuffer.rewind();
+				while (chunkBuffer.hasRemaining()) {
+					out.write(chunkBuffer);
+				}
+				// 只统计实际写入的转换结果
+				if (payload != raw) {
+					stats.converted++;
+					stats.blockEntitiesRemoved += chunkStats.blockEntitiesRemoved;
+					stats.contentsLost += chunkStats.contentsLost;
+				}
+
+				header.putInt(i * 4, nextSector << 8 | sectors);
+				header.putInt(SECTOR_SIZE + i * 4, timestamp);
+				nextSector += sectors;
+			}
+
+			header.rewind();
+			out.position(0);
+			while (header.hasRemaining()) {
+				out.write(header);
+			}
+			out.force(false);
+		}
+
+		// 整个文件写完后原子替换，崩溃时原文件保持完整
+		Files.move(temp, region, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return stats;
+	}
+
+	// 按区块坐标与种子确定方块，重复转换结果一致
+	private Block blockFor(ChunkPos chunkPos) {
+		return RandomBlockMod.getRandomBlock(RandomBlockMod.seededRandom(seed, chunkPos));
+	}
+
+	// 在调色板层面转换区块，返回是否有改动
+	boolean convertChunk(NbtCompound chunk, ChunkPos chunkPos, RegionStats stats) {
+		if (ChunkStatus.byId(chunk.getString("Status")) != ChunkStatus.FULL) return false;
+
+		Block randomBlock = blockFor(chunkPos);
+		if (randomBlock == null) return false;
+		NbtCompound randomState = NbtHelper.fromBlockState(randomBlock.getDefaultState());
+
+		// 需要保留的带物品方块实体位置（按区段）
+		NbtList blockEntities = chunk.getList("block_entities", NbtElement.COMPOUND_TYPE);
+		Map<Integer, BitSet> keptPositions = new HashMap<>();
+		if (keepContainers) {
+			for (int i = 0; i < blockEntities.size(); i++) {
+				NbtCompound blockEntity = blockEntities.getCompound(i);
+				if (!hasContents(blockEntity)) continue;
+				int y = blockEntity.getInt("y");
+				keptPositions.computeIfAbsent(y >> 4, k -> new BitSet(4096))
+						.set(sectionIndex(blockEntity.getInt("x") & 15, y & 15, blockEntity.getInt("z") & 15));
+			}
+		}
+
+		// 各区段被替换的位置，用于清理方块实体
+		Map<Integer, BitSet> convertedPositions = new HashMap<>();
+		NbtList sections = chunk.getList("sections", NbtElement.COMPOUND_TYPE);
+		for (int i = 0; i < sections.size(); i++) {
+			NbtCompound section = sections.getCompound(i);
+			if (!section.contains("block_states", NbtElement.COMPOUND_TYPE)) continue;
+			BitSet positions = convertSection(section.getCompound("block_states"), randomState, keptPositions.get((int) section.getByte("Y")));
+			if (positions != null) {
+				convertedPositions.put((int) section.getByte("Y"), positions);
+			}
+		}
+		if (convertedPositions.isEmpty()) return false;
+
+		blockEntities.removeIf(element -> {
+			NbtCompound blockEntity = (NbtCompound) element;
+			int x = blockEntity.getInt("x");
+			int y = blockEntity.getInt("y");
+			int z = blockEntity.getInt("z");
+			BitSet positions = convertedPositions.get(y >> 4);
+			if (positions == null || !positions.get(sectionIndex(x & 15, y & 15, z & 15))) return false;
+
+			// 离线无法掉落物品，内容随方块实体一起删除，只做统计
+			stats.blockEntitiesRemoved++;
+			if (hasContents(blockEntity)) stats.contentsLost++;
+			return true;
+		});
+
+		// 高度图与光照在加载时由服务器重新计算
+		chunk.remove("Heightmaps");
+		chunk.putBoolean("isLightOn", false);
+		return true;
+	}
+
+	// 带有物品（容器、讲台上的书、唱片机里的唱片等）的方块实体
+	private static boolean hasContents(NbtCompound blockEntity) {
+		return !blockEntity.getList("Items", NbtElement.COMPOUND_TYPE).isEmpty()
+				|| blockEntity.contains("Book", NbtElement.COMPOUND_TYPE)
+				|| blockEntity.contains("RecordItem", NbtElement.COMPOUND_TYPE);
+	}
+
+	// 重写调色板并去重，kept中的位置保持原方块，返回被替换位置（无改动时返回null）
+	private static BitSet convertSection(NbtCompound blockStates, NbtCompound randomState, BitSet kept) {
+		NbtList palette = blockStates.getList("palette", NbtElement.COMPOUND_TYPE);
+		int paletteSize = palette.size();
+		if (paletteSize == 0) return null;
+
+		// 旧调色板索引到新调色板索引的映射
+		int[] remap = new int[paletteSize];
+		boolean[] replaced = new boolean[paletteSize];
+		NbtList newPalette = new NbtList();
+		int randomIndex = -1;
+		for (int i = 0; i < paletteSize; i++) {
+			NbtCompound entry = palette.getCompound(i);
+			Identifier id = Identifier.tryParse(entry.getString("Name"));
+			if (id != null && RandomBlockMod.isPreserved(id)) {
+				remap[i] = newPalette.size();
+				newPalette.add(entry);
+			} else {
+				if (randomIndex < 0) {
+					randomIndex = newPalette.size();
+					newPalette.add(randomState.copy());
+				}
+				remap[i] = randomIndex;
+				replaced[i] = true;
+			}
+		}
+		if (randomIndex < 0) return null;
+
+		boolean keepAny = kept != null && !kept.isEmpty();
+		BitSet positions = new BitSet(4096);
+		if (paletteSize == 1 && !keepAny) {
+			positions.set(0, 4096);
+		} else {
+			int[] values = paletteSize == 1 ? new int[4096] : unpack(blockStates.getLongArray("data"), bitsFor(paletteSize));
+			// 被保留位置的原状态按需加入新调色板
+			int[] keptRemap = null;
+			for (int i = 0; i < values.length; i++) {
+				int value = values[i] < paletteSize ? values[i] : 0;
+				if (replaced[value] && keepAny && kept.get(i)) {
+					if (keptRemap == null) {
+						keptRemap = new int[paletteSize];
+						Arrays.fill(keptRemap, -1);
+					}
+					if (keptRemap[value] < 0) {
+						keptRemap[value] = newPalette.size();
+						newPalette.add(palette.getCompound(value));
+					}
+					values[i] = keptRemap[value];
+					continue;
+				}
+				if (replaced[value]) positions.set(i);
+				values[i] = remap[value];
+			}
+			if (newPalette.size() > 1) {
+				blockStates.putLongArray("data", pack(values, bitsFor(newPalette.size())));
+			}
+		}
+		if (newPalette.size() == 1) {
+			blockStates.remove("data");
+		}
+		blockStates.put("palette", newPalette);
+		return positions;
+	}
+
+	private static int bitsFor(int paletteSize) {
+		return Math.max(4, MathHelper.ceilLog2(paletteSize));
+	}
+
+	// 区段数据按位紧凑存储，每个long内不跨界
+	private static int[] unpack(long[] data, int bits) {
+		int[] values = new int[4096];
+		int perLong = 64 / bits;
+		long mask = (1L << bits) - 1;
+		for (int i = 0; i < values.length; i++) {
+			int longIndex = i / perLong;
+			if (longIndex >= data.length) break;
+			values[i] = (int) (data[longIndex] >>> (i % perLong * bits) & mask);
+		}
+		return values;
+	}
+
+	private static long[] pack(int[] values, int bits) {
+		int perLong = 64 / bits;
+		long[] data = new long[(values.length + perLong - 1) / perLong];
+		for (int i = 0; i < values.length; i++) {
+			data[i / perLong] |= (long) values[i] << (i % perLong * bits);
+		}
+		return data;
+	}
+
+	private static NbtCompound readChunk(byte compression, byte[] raw) throws IOException {
+		InputStream stream = new ByteArrayInputStream(raw);
+		if (compression == COMPRESSION_GZIP) {
+			stream = new GZIPInputStream(stream);
+		} else if (compression == COMPRESSION_ZLIB) {
+			stream = new InflaterInputStream(stream);
+		} else if (compression != COMPRESSION_NONE) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+			return NbtIo.read(in);
+		}
+	}
+
+	private static byte[] writeChunk(NbtCompound chunk) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(bytes)))) {
+			NbtIo.write(chunk, out);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static int sectionIndex(int x, int y, int z) {
+		return y << 8 | z << 4 | x;
+	}
+
+	// 单个区域（或区块）的转换统计
+	static class RegionStats {
+		int converted;
+		int blockEntitiesRemoved;
+		int contentsLost;
+	}
+}
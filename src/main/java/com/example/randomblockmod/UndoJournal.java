@@ -0,0 +1,460 @@
+package com.example.randomblockmod;
+
+import com.mojang.serialization.Codec;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.registry.Registries;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.world.ChunkTicketType;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.PalettedContainer;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// 区块转换撤销日志：按区域分段、只追加写入，保存转换前各区段的方块调色板
+// 保留策略：每个区块只需要最近一次撤销之后的第一份快照，服务器启动时整理日志，
+// 已撤销的快照、撤销标记和重复转换产生的后续快照都会被丢弃；尚未撤销的快照一直保留
+public class UndoJournal {
+
+	// 记录类型：转换前快照 / 已撤销标记
+	private static final byte RECORD_SNAPSHOT = 0;
+	private static final byte RECORD_RESTORED = 1;
+
+	// 撤销恢复使用的区块加载票据
+	private static final ChunkTicketType<ChunkPos> RESTORE_TICKET =
+			ChunkTicketType.create("randomblock_restore", Comparator.comparingLong(ChunkPos::toLong));
+
+	// 记录头长度：类型、x、z、时间、负载长度
+	private static final int RECORD_HEADER_SIZE = 1 + 4 + 4 + 8 + 4;
+
+	// 同时保持打开的分段文件上限
+	private static final int MAX_OPEN_SEGMENTS = 64;
+
+	// 与原版区块存档相同的方块调色板编码
+	private static final Codec<PalettedContainer<BlockState>> BLOCK_STATE_CODEC = PalettedContainer.createPalettedContainerCodec(
+			Block.STATE_IDS, BlockState.CODEC, PalettedContainer.PaletteProvider.BLOCK_STATE, Blocks.AIR.getDefaultState());
+
+	private final Path root;
+
+	// 单线程写入，保证同一分段内记录顺序
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "RandomBlock-UndoJournal");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// 已打开的分段文件（仅在写入线程访问）
+	private final Map<Path, DataOutputStream> openSegments = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, DataOutputStream> eldest) {
+			if (size() > MAX_OPEN_SEGMENTS) {
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	};
+
+	public UndoJournal(Path root) {
+		this.root = root;
+	}
+
+	// 在主线程拷贝即将被改动的区段，压缩与写盘交给写入线程
+	public void recordSnapshot(ServerWorld world, ChunkPos chunkPos, Block randomBlock, Chunk chunk, Predicate<BlockState> convertible) {
+		List<SectionSnapshot> sections = new ArrayList<>();
+		ChunkSection[] sectionArray = chunk.getSectionArray();
+		for (int i = 0; i < sectionArray.length; i++) {
+			ChunkSection section = sectionArray[i];
+			// 只记录含有可替换方块的区段，其余区段转换前后不变
+			if (section.isEmpty() || !section.hasAny(convertible)) continue;
+			sections.add(new SectionSnapshot(chunk.sectionIndexToCoord(i), section.getBlockStateContainer().copy()));
+		}
+		if (sections.isEmpty()) return;
+
+		Path segment = segmentPath(world, chunkPos);
+		Identifier blockId = Registries.BLOCK.getId(randomBlock);
+		long time = System.currentTimeMillis();
+		writer.execute(() -> {
+			try {
+				byte[] payload = encodeSnapshot(blockId, sections);
+				DataOutputStream out = segmentStream(segment);
+				writeHeader(out, RECORD_SNAPSHOT, chunkPos, time);
+				out.writeInt(payload.length);
+				out.write(payload);
+				out.flush();
+			} catch (IOException e) {
+				world.getServer().sendMessage(net.minecraft.text.Text.literal(
+						"撤销日志写入失败 [" + chunkPos.x + ", " + chunkPos.z + "]: " + e.getMessage()
+				));
+			}
+		});
+	}
+
+	// 撤销完成后追加标记，之后的转换将以新的快照为准
+	public void markRestored(ServerWorld world, ChunkPos chunkPos) {
+		Path segment = segmentPath(world, chunkPos);
+		long time = System.currentTimeMillis();
+		writer.execute(() -> {
+			try {
+				DataOutputStream out = segmentStream(segment);
+				writeHeader(out, RECORD_RESTORED, chunkPos, time);
+				out.writeInt(0);
+				out.flush();
+			} catch (IOException e) {
+				world.getServer().sendMessage(net.minecraft.text.Text.literal(
+						"撤销日志写入失败 [" + chunkPos.x + ", " + chunkPos.z + "]: " + e.getMessage()
+				));
+			}
+		});
+	}
+
+	// 在写入线程上按区域流式读取日志，找到每个区块最近一次撤销之后的第一份快照
+	public CompletableFuture<Integer> findRestores(ServerWorld world, Collection<ChunkPos> chunks, Consumer<RestoreTask> sink) {
+		Map<Path, Set<Long>> byRegion = new HashMap<>();
+		for (ChunkPos chunkPos : chunks) {
+			byRegion.computeIfAbsent(segmentPath(world, chunkPos), k -> new HashSet<>()).add(chunkPos.toLong());
+		}
+
+		return CompletableFuture.supplyAsync(() -> {
+			int found = 0;
+			for (Map.Entry<Path, Set<Long>> entry : byRegion.entrySet()) {
+				Path segment = entry.getKey();
+				DataOutputStream open = openSegments.get(segment);
+				if (open != null) {
+					try {
+						open.flush();
+					} catch (IOException ignored) {
+					}
+				}
+				if (!Files.exists(segment)) continue;
+
+				Map<Long, byte[]> originals = new HashMap<>();
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+					while (true) {
+						byte type;
+						try {
+							type = in.readByte();
+						} catch (EOFException e) {
+							break;
+						}
+						long key = ChunkPos.toLong(in.readInt(), in.readInt());
+						in.readLong();
+						int length = in.readInt();
+
+						if (!entry.getValue().contains(key)) {
+							in.skipNBytes(length);
+						} else if (type == RECORD_RESTORED) {
+							originals.remove(key);
+						} else if (originals.containsKey(key)) {
+							in.skipNBytes(length);
+						} else {
+							originals.put(key, in.readNBytes(length));
+						}
+					}
+				} catch (EOFException e) {
+					// 最后一条记录未写完整（例如服务器崩溃），忽略即可
+				} catch (IOException e) {
+					world.getServer().sendMessage(net.minecraft.text.Text.literal(
+							"撤销日志读取失败 " + segment.getFileName() + ": " + e.getMessage()
+					));
+				}
+
+				// 只交出压缩数据，恢复时再逐个解码，避免大范围撤销一次性占用大量内存
+				for (Map.Entry<Long, byte[]> original : originals.entrySet()) {
+					sink.accept(new RestoreTask(world, new ChunkPos(original.getKey()), original.getValue()));
+					found++;
+				}
+			}
+			return found;
+		}, writer);
+	}
+
+	// 在写入线程上整理所有分段，须在写入任何记录之前调用
+	public void compact(MinecraftServer server) {
+		writer.execute(() -> {
+			if (!Files.isDirectory(root)) return;
+
+			List<Path> segments;
+			try (Stream<Path> files = Files.walk(root)) {
+				segments = files.filter(file -> file.getFileName().toString().endsWith(".rbj")).collect(Collectors.toList());
+			} catch (IOException e) {
+				server.sendMessage(net.minecraft.text.Text.literal("撤销日志整理失败: " + e.getMessage()));
+				return;
+			}
+
+			long reclaimed = 0;
+			for (Path segment : segments) {
+				try {
+					reclaimed += compactSegment(segment);
+				} catch (IOException e) {
+					server.sendMessage(net.minecraft.text.Text.literal(
+							"撤销日志整理失败 " + segment.getFileName() + ": " + e.getMessage()
+					));
+				}
+			}
+			if (reclaimed > 0) {
+				server.sendMessage(net.minecraft.text.Text.literal("撤销日志整理完成，释放 " + reclaimed / 1024 + " KB"));
+			}
+		});
+	}
+
+	// 重写单个分段，只保留仍可撤销的快照，返回释放的字节数
+	private static long compactSegment(Path segment) throws IOException {
+		long size = Files.size(segment);
+
+		// 第一遍只记录每个区块要保留的记录位置与长度，不读取负载
+		Map<Long, long[]> kept = new LinkedHashMap<>();
+		int records = 0;
+		long offset = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+			while (true) {
+				byte type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				long key = ChunkPos.toLong(in.readInt(), in.readInt());
+				in.readLong();
+				int length = in.readInt();
+				in.skipNBytes(length);
+
+				if (type == RECORD_RESTORED) {
+					kept.remove(key);
+				} else {
+					kept.putIfAbsent(key, new long[]{offset, RECORD_HEADER_SIZE + length});
+				}
+				offset += RECORD_HEADER_SIZE + length;
+				records++;
+			}
+		} catch (EOFException e) {
+			// 末尾未写完整的记录在整理时一并丢弃
+		}
+		if (kept.size() == records && offset == size) return 0;
+
+		if (kept.isEmpty()) {
+			Files.delete(segment);
+			return size;
+		}
+
+		// 第二遍按位置直接复制保留的记录，写完后原子替换
+		Path temp = segment.resolveSibling(segment.getFileName() + ".tmp");
+		try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ);
+			 FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (long[] record : kept.values()) {
+				long position = record[0];
+				long remaining = record[1];
+				while (remaining > 0) {
+					long transferred = in.transferTo(position, remaining, out);
+					position += transferred;
+					remaining -= transferred;
+				}
+			}
+			out.force(false);
+		}
+		Files.move(temp, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return size - Files.size(segment);
+	}
+
+	public void close() {
+		writer.execute(() -> {
+			openSegments.values().forEach(UndoJournal::closeQuietly);
+			openSegments.clear();
+		});
+		writer.shutdown();
+		try {
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Path segmentPath(ServerWorld world, ChunkPos chunkPos) {
+		Identifier dimension = world.getRegistryKey().getValue();
+		return root.resolve(dimension.getNamespace()).resolve(dimension.getPath())
+				.resolve("r." + chunkPos.getRegionX() + "." + chunkPos.getRegionZ() + ".rbj");
+	}
+
+	private DataOutputStream segmentStream(Path segment) throws IOException {
+		DataOutputStream out = openSegments.get(segment);
+		if (out == null) {
+			Files.createDirectories(segment.getParent());
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment.toFile(), true)));
+			openSegments.put(segment, out);
+		}
+		return out;
+	}
+
+	private static void writeHeader(DataOutputStream out, byte type, ChunkPos chunkPos, long time) throws IOException {
+		out.writeByte(type);
+		out.writeInt(chunkPos.x);
+		out.writeInt(chunkPos.z);
+		out.writeLong(time);
+	}
+
+	private static byte[] encodeSnapshot(Identifier blockId, List<SectionSnapshot> sections) throws IOException {
+		NbtList list = new NbtList();
+		for (SectionSnapshot snapshot : sections) {
+			NbtElement states = BLOCK_STATE_CODEC.encodeStart(NbtOps.INSTANCE, snapshot.blockStates)
+					.result().orElseThrow(() -> new IOException("无法编码区段 " + snapshot.sectionY));
+			NbtCompound section = new NbtCompound();
+			section.putByte("Y", (byte) snapshot.sectionY);
+			section.put("block_states", states);
+			list.add(section);
+		}
+		NbtCompound nbt = new NbtCompound();
+		nbt.putString("Block", blockId.toString());
+		nbt.put("Sections", list);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED)))) {
+			NbtIo.write(nbt, out);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static List<SectionSnapshot> decodeSnapshot(byte[] payload) throws IOException {
+		NbtCompound nbt;
+		try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(payload)))) {
+			nbt = NbtIo.read(in);
+		}
+		List<SectionSnapshot> sections = new ArrayList<>();
+		NbtList list = nbt.getList("Sections", NbtElement.COMPOUND_TYPE);
+		for (int i = 0; i < list.size(); i++) {
+			NbtCompound section = list.getCompound(i);
+			int sectionY = section.getByte("Y");
+			PalettedContainer<BlockState> states = BLOCK_STATE_CODEC.parse(NbtOps.INSTANCE, section.getCompound("block_states"))
+					.result().orElseThrow(() -> new IOException("无法解码区段 " + sectionY));
+			sections.add(new SectionSnapshot(sectionY, states));
+		}
+		return sections;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	private static class SectionSnapshot {
+		final int sectionY;
+		final PalettedContainer<BlockState> blockStates;
+
+		SectionSnapshot(int sectionY, PalettedContainer<BlockState> blockStates) {
+			this.sectionY = sectionY;
+			this.blockStates = blockStates;
+		}
+	}
+
+	// 单个区块的恢复任务，可在多个tick间分段执行；快照在第一次执行时才解码
+	public static class RestoreTask {
+		final ServerWorld world;
+		final ChunkPos chunkPos;
+		private byte[] payload;
+		private List<SectionSnapshot> sections;
+		private boolean corrupt = false;
+		private boolean ticketed = false;
+		private int sectionCursor = 0;
+		private int blockCursor = 0;
+
+		RestoreTask(ServerWorld world, ChunkPos chunkPos, byte[] payload) {
+			this.world = world;
+			this.chunkPos = chunkPos;
+			this.payload = payload;
+		}
+
+		// 请求异步加载区块，半径1使相邻区块也一并加载，恢复时的形状更新不会同步加载区块
+		void requestLoad() {
+			if (ticketed) return;
+			world.getChunkManager().addTicket(RESTORE_TICKET, chunkPos, 1, chunkPos);
+			ticketed = true;
+		}
+
+		// 本区块及相邻区块都已完整加载时才能在主线程上恢复
+		boolean isLoaded() {
+			for (int dx = -1; dx <= 1; dx++) {
+				for (int dz = -1; dz <= 1; dz++) {
+					if (world.getChunkManager().getWorldChunk(chunkPos.x + dx, chunkPos.z + dz) == null) return false;
+				}
+			}
+			return true;
+		}
+
+		void release() {
+			if (!ticketed) return;
+			world.getChunkManager().removeTicket(RESTORE_TICKET, chunkPos, 1, chunkPos);
+			ticketed = false;
+		}
+
+		// 快照无法解码时不做任何恢复，也不应记为已撤销
+		boolean isCorrupt() {
+			return corrupt;
+		}
+
+		// 在截止时间前尽量恢复，全部完成时返回true
+		boolean step(long deadline) {
+			if (sections == null) {
+				try {
+					sections = decodeSnapshot(payload);
+				} catch (IOException | RuntimeException e) {
+					world.getServer().sendMessage(net.minecraft.text.Text.literal(
+							"撤销快照损坏 [" + chunkPos.x + ", " + chunkPos.z + "]: " + e.getMessage()
+					));
+					sections = List.of();
+					corrupt = true;
+				}
+				payload = null;
+			}
+
+			BlockPos.Mutable pos = new BlockPos.Mutable();
+			while (sectionCursor < sections.size()) {
+				SectionSnapshot snapshot = sections.get(sectionCursor);
+				int baseY = snapshot.sectionY << 4;
+				while (blockCursor < 4096) {
+					int x = blockCursor & 15;
+					int z = (blockCursor >> 4) & 15;
+					int y = blockCursor >> 8;
+					BlockState original = snapshot.blockStates.get(x, y, z);
+					pos.set(chunkPos.getStartX() + x, baseY + y, chunkPos.getStartZ() + z);
+					if (world.getBlockState(pos) != original) {
+						world.setBlockState(pos, original, Block.NOTIFY_LISTENERS);
+					}
+					blockCursor++;
+
+					// 每处理一层检查一次时间预算
+					if ((blockCursor & 255) == 0 && System.nanoTime() >= deadline) {
+						return false;
+					}
+				}
+				blockCursor = 0;
+				sectionCursor++;
+			}
+			return true;
+		}
+	}
+}